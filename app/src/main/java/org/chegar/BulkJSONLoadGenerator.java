@@ -1,5 +1,7 @@
 package org.chegar;
 
+import jdk.jfr.Recording;
+
 import java.io.*;
 import java.net.URI;
 import java.net.http.*;
@@ -25,15 +27,21 @@ public class BulkJSONLoadGenerator {
 
     static final byte[] INDEX_LINE = "{\"index\":{}}\n".getBytes(UTF_8);
     static final AtomicLong TOTAL_DOCS_SENT = new AtomicLong(0);
-    private static final AtomicLong TOTAL_FAILED_BULKS = new AtomicLong(0);
-    private static final AtomicLong TOTAL_BYTES_SENT = new AtomicLong(0);
+    static final AtomicLong TOTAL_FAILED_BULKS = new AtomicLong(0);
+    static final AtomicLong TOTAL_BYTES_SENT = new AtomicLong(0);
+    static final LatencyHistogram BULK_LATENCY = new LatencyHistogram();
 
     // Represent a byte range in the file
     public record ByteRange(long startByte, long endByte) {}
 
     public static void main(String[] args) throws Exception {
+        List<String> argList = new ArrayList<>(List.of(args));
+        boolean jfr = argList.remove(LoaderEvents.JFR_FLAG);
+        KnnQueryWorkload.Options knnOptions = KnnQueryWorkload.Options.parse(argList);
+        args = argList.toArray(String[]::new);
         if (args.length != 5) {
-            System.err.println("Usage: java BulkJSONLoadGenerator <esUrl> <indexName> <bulkSize> <indexingThreads> <filePath>");
+            System.err.println("Usage: java BulkJSONLoadGenerator [--jfr] " + KnnQueryWorkload.Options.USAGE +
+                    " <esUrl> <indexName> <bulkSize> <indexingThreads> <filePath>");
             System.exit(1);
         }
 
@@ -55,6 +63,11 @@ public class BulkJSONLoadGenerator {
             System.out.printf("Thread-%d: byteStart=%,d byteEnd=%,d%n", i, r.startByte(), r.endByte());
         }
 
+        KnnQueryWorkload knn = knnOptions == null ? null
+                : KnnQueryWorkload.forJsonFile(esUrl, indexName, knnOptions, filePath);
+
+        Recording recording = jfr ? LoaderEvents.startRecording("bulk-json") : null;
+
         CountDownLatch readyLatch = new CountDownLatch(numThreads);
         CountDownLatch startLatch = new CountDownLatch(1);
 
@@ -91,6 +104,7 @@ public class BulkJSONLoadGenerator {
         System.out.println("All threads ready — releasing start latch!");
         long start = System.nanoTime();
         startLatch.countDown();
+        if (knn != null) knn.start();
 
         // Wait for completion
         for (Thread t : threads) t.join();
@@ -98,10 +112,17 @@ public class BulkJSONLoadGenerator {
         reporter.shutdownNow();
 
         double elapsedSec = (System.nanoTime() - start) / 1_000_000_000.0;
+        if (knn != null) knn.stop();
+        LoaderEvents.stopRecording(recording);
         printSummary(elapsedSec);
+        if (knn != null) {
+            knn.measureRecallAfterLoad();
+            knn.printSummary();
+        }
     }
 
-    static void processChunk(String esUrl, String indexName, Path path,
+    // Returns the number of docs in the bulks that succeeded
+    static long processChunk(String esUrl, String indexName, Path path,
                              long startByte, long endByte, int bulkSize,
                              CountDownLatch readyLatch, CountDownLatch startLatch)
             throws IOException, InterruptedException {
@@ -110,60 +131,115 @@ public class BulkJSONLoadGenerator {
              InputStream in = Channels.newInputStream(channel);
              BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8), 128 * 1024)) {
 
-            // Seek to the start of our range
-            channel.position(startByte);
-
-            // If not at start, discard the first partial line
-            if (startByte > 0) reader.readLine();
+            // A line belongs to the range its first byte is in. If not at the start, seek to
+            // just before our range, and discard up to the end of that line.
+            long approxPos = startByte;
+            if (startByte > 0) {
+                channel.position(startByte - 1);
+                String partial = reader.readLine();
+                approxPos = startByte - 1 + (partial == null ? 0 : partial.getBytes(StandardCharsets.UTF_8).length + 1);
+            }
 
             readyLatch.countDown();
             startLatch.await();
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream(16384);
-            String line;
-            int count = 0;
-            long approxPos = startByte;
-
-            while ((line = reader.readLine()) != null) {
-                approxPos += line.getBytes(StandardCharsets.UTF_8).length + 1;
-                if (approxPos >= endByte) break;
+            List<byte[]> lines = new ArrayList<>(bulkSize);
+            boolean done = false;
+            long docsSent = 0;
+
+            while (!done) {
+                // Read the next bulk's worth of lines, then assemble and send them
+                LoaderEvents.ChunkRead read = new LoaderEvents.ChunkRead();
+                read.begin();
+                long readStart = approxPos;
+                String line;
+                lines.clear();
+                while (lines.size() < bulkSize) {
+                    if (approxPos >= endByte || (line = reader.readLine()) == null) {
+                        done = true;
+                        break;
+                    }
+                    byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                    approxPos += bytes.length + 1;
+                    lines.add(bytes);
+                }
+                read.end();
+                // nothing left to read isn't a chunk, so the reads line up with the bulks
+                if (!lines.isEmpty() && read.shouldCommit()) {
+                    read.docs = lines.size();
+                    read.bytes = approxPos - readStart;
+                    read.commit();
+                }
 
-                baos.write(INDEX_LINE);
-                baos.write(line.getBytes(UTF_8));
-                baos.write('\n');
-                count++;
+                if (lines.isEmpty()) break;
 
-                if (count == bulkSize) {
-                    sendBulk(esUrl, indexName, baos.toByteArray(), count);
-                    baos.reset();
-                    count = 0;
+                LoaderEvents.BulkAssembly assembly = new LoaderEvents.BulkAssembly();
+                assembly.begin();
+                for (byte[] l : lines) {
+                    baos.write(INDEX_LINE);
+                    baos.write(l);
+                    baos.write('\n');
+                }
+                byte[] body = baos.toByteArray();
+                baos.reset();
+                assembly.end();
+                if (assembly.shouldCommit()) {
+                    assembly.docs = lines.size();
+                    assembly.bytes = body.length;
+                    assembly.commit();
                 }
-            }
 
-            if (count > 0) {
-                sendBulk(esUrl, indexName, baos.toByteArray(), count);
+                if (sendBulk(esUrl, indexName, body, lines.size())) docsSent += lines.size();
             }
+            return docsSent;
         }
     }
 
-    static void sendBulk(String esUrl, String indexName, byte[] body, int docCount)
+    // Returns true if the bulk request succeeded
+    static boolean sendBulk(String esUrl, String indexName, byte[] body, int docCount)
             throws IOException, InterruptedException {
 
+        String endpoint = esUrl + "/" + indexName + "/_bulk";
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(esUrl + "/" + indexName + "/_bulk"))
+                .uri(URI.create(endpoint))
                 .header("Content-Type", "application/x-ndjson")
                 .POST(HttpRequest.BodyPublishers.ofByteArray(body))
                 .build();
 
-        HttpResponse<String> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+        LoaderEvents.BulkSend send = new LoaderEvents.BulkSend();
+        send.begin();
+        long sendStart = System.nanoTime();
+        HttpResponse<byte[]> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        BULK_LATENCY.recordNanos(System.nanoTime() - sendStart);
+        send.end();
+        if (send.shouldCommit()) {
+            send.endpoint = endpoint;
+            send.status = response.statusCode();
+            send.docs = docCount;
+            send.bytes = body.length;
+            send.commit();
+        }
+
+        LoaderEvents.BulkResponse handling = new LoaderEvents.BulkResponse();
+        handling.begin();
         TOTAL_BYTES_SENT.addAndGet(body.length);
 
-        if (response.statusCode() >= 300) {
+        boolean failed = response.statusCode() >= 300;
+        if (failed) {
             TOTAL_FAILED_BULKS.incrementAndGet();
             System.err.printf("[%s] Bulk failed: %d%n", Thread.currentThread().getName(), response.statusCode());
         } else {
             TOTAL_DOCS_SENT.addAndGet(docCount);
         }
+        handling.end();
+        if (handling.shouldCommit()) {
+            handling.status = response.statusCode();
+            handling.failed = failed;
+            handling.responseBytes = response.body().length;
+            handling.commit();
+        }
+        return !failed;
     }
 
     static List<ByteRange> partitionFileByBytes(Path path, int numThreads) throws IOException {
@@ -187,6 +263,7 @@ public class BulkJSONLoadGenerator {
         System.out.printf("Total bytes sent: %,d (%.2f MB)%n",
                 TOTAL_BYTES_SENT.get(), TOTAL_BYTES_SENT.get() / (1024.0 * 1024.0));
         System.out.printf("Elapsed time: %.2f sec%n", elapsedSec);
+        System.out.printf("Bulk latency: %s%n", BULK_LATENCY.summary());
         System.out.printf("Average throughput: %.2f docs/sec%n",
                 TOTAL_DOCS_SENT.get() / elapsedSec);
         System.out.println("========================");
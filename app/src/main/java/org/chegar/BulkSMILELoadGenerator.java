@@ -1,12 +1,11 @@
 package org.chegar;
 
+import jdk.jfr.Recording;
+
 import java.io.*;
 import java.net.URI;
 import java.net.http.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.Duration;
 import java.util.ArrayList;
@@ -14,9 +13,8 @@ import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
-// For OpenAI dataset, but maybe more.
+// For OpenAI dataset, but maybe more. Loads a SmileBlockFile, as written by NdjsonToSmile --blocks,
+// partitioning it by bytes like the JSON loader, with each thread resyncing at a block header.
 public class BulkSMILELoadGenerator {
 
     static final HttpClient CLIENT = HttpClient.newBuilder()
@@ -35,15 +33,19 @@ public class BulkSMILELoadGenerator {
     };
 
     static final AtomicLong TOTAL_DOCS_SENT = new AtomicLong(0);
-    private static final AtomicLong TOTAL_FAILED_BULKS = new AtomicLong(0);
-    private static final AtomicLong TOTAL_BYTES_SENT = new AtomicLong(0);
+    static final AtomicLong TOTAL_FAILED_BULKS = new AtomicLong(0);
+    static final AtomicLong TOTAL_BYTES_SENT = new AtomicLong(0);
+    static final LatencyHistogram BULK_LATENCY = new LatencyHistogram();
 
     // Represent a byte range in the file
     public record ByteRange(long startByte, long endByte) {}
 
     public static void main(String[] args) throws Exception {
+        List<String> argList = new ArrayList<>(List.of(args));
+        boolean jfr = argList.remove(LoaderEvents.JFR_FLAG);
+        args = argList.toArray(String[]::new);
         if (args.length != 5) {
-            System.err.println("Usage: java BulkSMILELoadGenerator <esUrl> <indexName> <bulkSize> <indexingThreads> <filePath>");
+            System.err.println("Usage: java BulkSMILELoadGenerator [--jfr] <esUrl> <indexName> <bulkSize> <indexingThreads> <filePath>");
             System.exit(1);
         }
 
@@ -55,16 +57,22 @@ public class BulkSMILELoadGenerator {
 
         long fileSize = Files.size(filePath);
         List<ByteRange> ranges = partitionFileByBytes(filePath, numThreads);
+        int blockSize;
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            blockSize = SmileBlockFile.blockSize(channel);
+        }
 
         System.out.printf(
-                "Starting load: fileSize=%,d bytes, threads=%d, bulkSize=%d, file=%s%n",
-                fileSize, numThreads, bulkSize, filePath
+                "Starting load: fileSize=%,d bytes, blockSize=%,d, threads=%d, bulkSize=%d, file=%s%n",
+                fileSize, blockSize, numThreads, bulkSize, filePath
         );
         for (int i = 0; i < ranges.size(); i++) {
             var r = ranges.get(i);
             System.out.printf("Thread-%d: byteStart=%,d byteEnd=%,d%n", i, r.startByte(), r.endByte());
         }
 
+        Recording recording = jfr ? LoaderEvents.startRecording("bulk-smile") : null;
+
         CountDownLatch readyLatch = new CountDownLatch(numThreads);
         CountDownLatch startLatch = new CountDownLatch(1);
 
@@ -76,7 +84,7 @@ public class BulkSMILELoadGenerator {
 
             Thread t = new Thread(() -> {
                 try {
-                    processChunk(esUrl, indexName, filePath, range.startByte(), range.endByte(),
+                    processChunk(esUrl, indexName, filePath, blockSize, range.startByte(), range.endByte(),
                             bulkSize, readyLatch, startLatch);
                 } catch (Exception e) {
                     System.err.printf("Thread-%d failed: %s%n", threadId, e.getMessage());
@@ -108,96 +116,126 @@ public class BulkSMILELoadGenerator {
         reporter.shutdownNow();
 
         double elapsedSec = (System.nanoTime() - start) / 1_000_000_000.0;
+        LoaderEvents.stopRecording(recording);
         printSummary(elapsedSec);
     }
 
-    static void processChunk(String esUrl, String indexName, Path path,
+    // Returns the number of docs in the bulks that succeeded
+    static long processChunk(String esUrl, String indexName, Path path, int blockSize,
                              long startByte, long endByte, int bulkSize,
                              CountDownLatch readyLatch, CountDownLatch startLatch)
             throws IOException, InterruptedException {
 
-        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
-             InputStream in = Channels.newInputStream(channel);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8), 128 * 1024)) {
-
-            // Seek to the start of our range
-            channel.position(startByte);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
 
-            // If not at start, discard the first partial line
-            if (startByte > 0) reader.readLine();
+            // Resync at the first block header at or after the start of our range. The
+            // records that start in the blocks before the one at or after our end are ours.
+            SmileBlockFile.Reader reader = new SmileBlockFile.Reader(channel, blockSize,
+                    SmileBlockFile.blockAtOrAfter(startByte, blockSize),
+                    SmileBlockFile.blockAtOrAfter(endByte, blockSize));
 
             readyLatch.countDown();
             startLatch.await();
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream(16384);
             DataOutputStream out = new DataOutputStream(baos);
-            int count = 0;
-            long approxPos = startByte;
-
-            for (int i = 0; i < range.docCount(); i++) {
-
-            }
-
-                while ((line = reader.readLine()) != null) {
-                approxPos += line.getBytes(StandardCharsets.UTF_8).length + 1;
-                if (approxPos >= endByte) break;
-
-                // Write precomputed index action line
-                baos.write(INDEX_ACTION_LINE);
-
-                // Read 4-byte length
-                ByteBuffer lenBuf = ByteBuffer.allocate(4);
-                channel.read(lenBuf, pos);
-                lenBuf.flip();
-                int docLen = lenBuf.getInt();
-
-                // Read Smile document
-                ByteBuffer docBuf = ByteBuffer.allocate(docLen);
-                channel.read(docBuf, pos + 4);
-                docBuf.flip();
-
-                // Write length + document
-                out.writeInt(docLen);
-                out.write(docBuf.array());
-
-                pos += 4L + docLen;
+            List<byte[]> docs = new ArrayList<>(bulkSize);
+            boolean done = false;
+            long docsSent = 0;
+
+            while (!done) {
+                // Read the next bulk's worth of documents, then assemble and send them
+                LoaderEvents.ChunkRead read = new LoaderEvents.ChunkRead();
+                read.begin();
+                long readBytes = 0;
+                docs.clear();
+                while (docs.size() < bulkSize) {
+                    byte[] doc = reader.next();
+                    if (doc == null) {
+                        done = true;
+                        break;
+                    }
+                    docs.add(doc);
+                    readBytes += 4 + doc.length;
+                }
+                read.end();
+                // nothing left to read isn't a chunk, so the reads line up with the bulks
+                if (!docs.isEmpty() && read.shouldCommit()) {
+                    read.docs = docs.size();
+                    read.bytes = readBytes;
+                    read.commit();
+                }
 
-//                baos.write(INDEX_ACTION_LINE);
-//                baos.write(line.getBytes(UTF_8));
-//                baos.write('\n');
-//                count++;
+                if (docs.isEmpty()) break;
 
-                if (count == bulkSize) {
-                    sendBulk(esUrl, indexName, baos.toByteArray(), count);
-                    baos.reset();
-                    count = 0;
+                LoaderEvents.BulkAssembly assembly = new LoaderEvents.BulkAssembly();
+                assembly.begin();
+                for (byte[] doc : docs) {
+                    // Write precomputed index action line, then length + document
+                    out.write(INDEX_ACTION_LINE);
+                    out.writeInt(doc.length);
+                    out.write(doc);
+                }
+                byte[] body = baos.toByteArray();
+                baos.reset();
+                assembly.end();
+                if (assembly.shouldCommit()) {
+                    assembly.docs = docs.size();
+                    assembly.bytes = body.length;
+                    assembly.commit();
                 }
-            }
 
-            if (count > 0) {
-                sendBulk(esUrl, indexName, baos.toByteArray(), count);
+                if (sendBulk(esUrl, indexName, body, docs.size())) docsSent += docs.size();
             }
+            return docsSent;
         }
     }
 
-    static void sendBulk(String esUrl, String indexName, byte[] body, int docCount)
+    // Returns true if the bulk request succeeded
+    static boolean sendBulk(String esUrl, String indexName, byte[] body, int docCount)
             throws IOException, InterruptedException {
 
+        String endpoint = esUrl + "/" + indexName + "/_bulk";
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(esUrl + "/" + indexName + "/_bulk"))
-                .header("Content-Type", "application/x-ndjson")
+                .uri(URI.create(endpoint))
+                .header("Content-Type", "application/smile")
+                .header("Bulk-Format", "prefix-length")
                 .POST(HttpRequest.BodyPublishers.ofByteArray(body))
                 .build();
 
-        HttpResponse<String> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+        LoaderEvents.BulkSend send = new LoaderEvents.BulkSend();
+        send.begin();
+        long sendStart = System.nanoTime();
+        HttpResponse<byte[]> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        BULK_LATENCY.recordNanos(System.nanoTime() - sendStart);
+        send.end();
+        if (send.shouldCommit()) {
+            send.endpoint = endpoint;
+            send.status = response.statusCode();
+            send.docs = docCount;
+            send.bytes = body.length;
+            send.commit();
+        }
+
+        LoaderEvents.BulkResponse handling = new LoaderEvents.BulkResponse();
+        handling.begin();
         TOTAL_BYTES_SENT.addAndGet(body.length);
 
-        if (response.statusCode() >= 300) {
+        boolean failed = response.statusCode() >= 300;
+        if (failed) {
             TOTAL_FAILED_BULKS.incrementAndGet();
             System.err.printf("[%s] Bulk failed: %d%n", Thread.currentThread().getName(), response.statusCode());
         } else {
             TOTAL_DOCS_SENT.addAndGet(docCount);
         }
+        handling.end();
+        if (handling.shouldCommit()) {
+            handling.status = response.statusCode();
+            handling.failed = failed;
+            handling.responseBytes = response.body().length;
+            handling.commit();
+        }
+        return !failed;
     }
 
     static List<ByteRange> partitionFileByBytes(Path path, int numThreads) throws IOException {
@@ -221,6 +259,7 @@ public class BulkSMILELoadGenerator {
         System.out.printf("Total bytes sent: %,d (%.2f MB)%n",
                 TOTAL_BYTES_SENT.get(), TOTAL_BYTES_SENT.get() / (1024.0 * 1024.0));
         System.out.printf("Elapsed time: %.2f sec%n", elapsedSec);
+        System.out.printf("Bulk latency: %s%n", BULK_LATENCY.summary());
         System.out.printf("Average throughput: %.2f docs/sec%n",
                 TOTAL_DOCS_SENT.get() / elapsedSec);
         System.out.println("========================");
@@ -0,0 +1,488 @@
+package org.chegar;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Issues kNN searches at a fixed rate while a bulk load is running, recording the
+// search latency and the recall-at-k.
+//
+// Query vectors are sampled from the same input file as is being loaded. The ground
+// truth is computed locally, by brute force over every vector in the file, and a hit
+// is counted as relevant if its score is at least that of the k-th true neighbour.
+// During the load the index holds only part of the file, while the ground truth is over
+// all of it, so recall during the load mostly shows how much of the file has been loaded,
+// not how good the graph is while it's being built and merged. Only once the load is done,
+// and the index refreshed, is each query run once more to give the recall of the graph.
+//
+// Searches are sent open-loop, each on its own virtual thread, and latency is measured
+// from the intended start time, so that a slow cluster isn't hidden by queuing. Failed
+// and timed out searches are recorded too, since they're often the slowest.
+public class KnnQueryWorkload {
+
+    // --knn-qps enables the workload, the others tune it
+    public record Options(double qps, int k, int numCandidates, int numQueries, String field) {
+        static final String PREFIX = "--knn-";
+
+        // Removes any --knn-* flags from the given args, returning null if --knn-qps is absent
+        static Options parse(List<String> args) {
+            Map<String, String> flags = new HashMap<>();
+            for (Iterator<String> it = args.iterator(); it.hasNext(); ) {
+                String arg = it.next();
+                if (arg.startsWith(PREFIX)) {
+                    int eq = arg.indexOf('=');
+                    if (eq < 0) throw new IllegalArgumentException("expected " + arg + "=<value>");
+                    flags.put(arg.substring(PREFIX.length(), eq), arg.substring(eq + 1));
+                    it.remove();
+                }
+            }
+            if (!flags.containsKey("qps")) return null;
+            return new Options(
+                    Double.parseDouble(flags.get("qps")),
+                    Integer.parseInt(flags.getOrDefault("k", "10")),
+                    Integer.parseInt(flags.getOrDefault("candidates", "100")),
+                    Integer.parseInt(flags.getOrDefault("queries", "100")),
+                    flags.getOrDefault("field", "emb"));
+        }
+
+        static final String USAGE = "[--knn-qps=<n> [--knn-k=10] [--knn-candidates=100] " +
+                "[--knn-queries=100] [--knn-field=emb]]";
+    }
+
+    // One of the disjoint parts of the corpus that the ground truth is computed over
+    interface VectorSource {
+        void forEach(Consumer<float[]> action) throws IOException;
+    }
+
+    static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    static final Duration QUERY_TIMEOUT = Duration.ofSeconds(30);
+    static final Duration DRAIN_TIMEOUT = QUERY_TIMEOUT.plusSeconds(10);
+    static final int RECALL_THREADS = 8;
+
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
+    private final String esUrl;
+    private final String indexName;
+    private final Options options;
+    private final List<float[]> queries;
+    private final float[] kthScores; // per query, the dot product of its k-th true neighbour
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final DoubleAdder recallSum = new DoubleAdder();
+    private final AtomicLong recallCount = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private double recallAfterLoad = Double.NaN;
+    private volatile boolean running;
+    private Thread pacer;
+
+    KnnQueryWorkload(String esUrl, String indexName, Options options, List<float[]> queries,
+                     List<VectorSource> corpus) throws InterruptedException {
+        this.esUrl = esUrl;
+        this.indexName = indexName;
+        this.options = options;
+        if (queries.isEmpty()) throw new IllegalStateException("no vectors sampled for kNN queries");
+        this.queries = queries;
+        this.kthScores = groundTruth(queries, corpus, options.k());
+    }
+
+    // Samples the query vectors from a newline delimited JSON file, and computes the ground
+    // truth over all of its lines, split by byte range like the loader
+    static KnnQueryWorkload forJsonFile(String esUrl, String indexName, Options options, Path path)
+            throws IOException, InterruptedException {
+        List<VectorSource> corpus = new ArrayList<>();
+        for (BulkJSONLoadGenerator.ByteRange range :
+                BulkJSONLoadGenerator.partitionFileByBytes(path, Runtime.getRuntime().availableProcessors())) {
+            corpus.add(action -> forEachJson(path, range.startByte(), range.endByte(), options.field(), action));
+        }
+        return new KnnQueryWorkload(esUrl, indexName, options,
+                sampleJson(path, options.numQueries(), options.field()), corpus);
+    }
+
+    // Reads the query vectors at the given record offsets of a 4-byte length-prefixed Smile
+    // file, and computes the ground truth over all of the records in the bulk ranges
+    static KnnQueryWorkload forSmileFile(String esUrl, String indexName, Options options, Path path,
+                                         long[] queryOffsets, List<SmileBulkFileSender.BulkRange> ranges)
+            throws IOException, InterruptedException {
+        List<VectorSource> corpus = new ArrayList<>();
+        int numParts = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < numParts; i++) {
+            List<SmileBulkFileSender.BulkRange> part = ranges.subList(
+                    (int) ((long) ranges.size() * i / numParts), (int) ((long) ranges.size() * (i + 1) / numParts));
+            if (!part.isEmpty()) corpus.add(action -> forEachSmile(path, part, options.field(), action));
+        }
+        return new KnnQueryWorkload(esUrl, indexName, options,
+                readSmile(path, queryOffsets, options.field()), corpus);
+    }
+
+    // Samples up to n vectors from distinct lines, starting at random byte offsets.
+    // If n looks to cover the whole file, then the first n lines are read instead.
+    static List<float[]> sampleJson(Path path, int n, String field) throws IOException {
+        long fileSize = Files.size(path);
+        try (BufferedReader reader = Files.newBufferedReader(path, UTF_8)) {
+            String first = reader.readLine();
+            if (first == null) return List.of();
+            if ((long) n * (first.getBytes(UTF_8).length + 1) >= fileSize) {
+                List<float[]> sample = new ArrayList<>();
+                for (String line = first; line != null && sample.size() < n; line = reader.readLine()) {
+                    if (!line.isBlank()) sample.add(parseVector(JSON_MAPPER.createParser(line), field));
+                }
+                Collections.shuffle(sample, new Random(fileSize));
+                return sample;
+            }
+        }
+
+        SplittableRandom random = new SplittableRandom(fileSize);
+        TreeSet<Long> offsets = new TreeSet<>();
+        for (int i = 0; i < n * 2 && offsets.size() < n; i++) {
+            offsets.add(random.nextLong(fileSize));
+        }
+
+        // Read in file order, skipping offsets that land on an already sampled line
+        List<float[]> sample = new ArrayList<>(n);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long nextLineStart = 0;
+            for (long offset : offsets) {
+                if (offset < nextLineStart) continue;
+                channel.position(offset);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), UTF_8));
+                String partial = offset > 0 ? reader.readLine() : "";
+                String line = reader.readLine();
+                if (partial == null || line == null) continue;
+                long lineStart = offset > 0 ? offset + partial.getBytes(UTF_8).length + 1 : 0;
+                nextLineStart = lineStart + line.getBytes(UTF_8).length + 1;
+                if (line.isBlank()) continue;
+                sample.add(parseVector(JSON_MAPPER.createParser(line), field));
+            }
+        }
+        Collections.shuffle(sample, new Random(fileSize));
+        return sample;
+    }
+
+    // Reads the vectors of the records at the given offsets
+    static List<float[]> readSmile(Path path, long[] recordOffsets, String field) throws IOException {
+        List<float[]> vectors = new ArrayList<>(recordOffsets.length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (long offset : recordOffsets) {
+                ByteBuffer lenBuf = ByteBuffer.allocate(4);
+                channel.read(lenBuf, offset);
+                lenBuf.flip();
+                ByteBuffer docBuf = ByteBuffer.allocate(lenBuf.getInt());
+                channel.read(docBuf, offset + 4);
+                vectors.add(parseVector(SMILE_MAPPER.createParser(docBuf.array()), field));
+            }
+        }
+        return vectors;
+    }
+
+    // The vectors of the lines whose first byte is in [startByte, endByte), as in
+    // BulkJSONLoadGenerator.processChunk
+    static void forEachJson(Path path, long startByte, long endByte, String field, Consumer<float[]> action)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(Channels.newInputStream(channel), UTF_8), 128 * 1024)) {
+            long approxPos = startByte;
+            if (startByte > 0) {
+                channel.position(startByte - 1);
+                String partial = reader.readLine();
+                approxPos = startByte - 1 + (partial == null ? 0 : partial.getBytes(UTF_8).length + 1);
+            }
+            String line;
+            while (approxPos < endByte && (line = reader.readLine()) != null) {
+                approxPos += line.getBytes(UTF_8).length + 1;
+                if (!line.isBlank()) action.accept(parseVector(JSON_MAPPER.createParser(line), field));
+            }
+        }
+    }
+
+    // The vectors of the records in the given contiguous bulk ranges
+    static void forEachSmile(Path path, List<SmileBulkFileSender.BulkRange> ranges, String field,
+                             Consumer<float[]> action) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.position(ranges.get(0).startOffset());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 20));
+            for (SmileBulkFileSender.BulkRange range : ranges) {
+                for (int i = 0; i < range.docCount(); i++) {
+                    byte[] doc = new byte[in.readInt()];
+                    in.readFully(doc);
+                    action.accept(parseVector(SMILE_MAPPER.createParser(doc), field));
+                }
+            }
+        }
+    }
+
+    // Streams through a document for the named top-level array of numbers, without
+    // building a tree, since the ground truth parses every document in the file
+    static float[] parseVector(JsonParser parser, String field) throws IOException {
+        try (parser) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) throw new IOException("expected an object");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                if (parser.nextToken() == JsonToken.START_ARRAY && name.equals(field)) {
+                    float[] v = new float[256];
+                    int n = 0;
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        if (n == v.length) v = Arrays.copyOf(v, n * 2);
+                        v[n++] = parser.getFloatValue();
+                    }
+                    return Arrays.copyOf(v, n);
+                }
+                parser.skipChildren();
+            }
+        }
+        throw new IOException("no " + field + " field");
+    }
+
+    // Brute force: for each query, the k-th highest dot product over the whole corpus.
+    // Each part of the corpus is scanned by its own thread, keeping the best k per query,
+    // which are then merged.
+    static float[] groundTruth(List<float[]> queries, List<VectorSource> corpus, int k)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        AtomicLong corpusSize = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(corpus.size());
+        List<PriorityQueue<Float>> merged = new ArrayList<>(queries.size());
+        for (int q = 0; q < queries.size(); q++) merged.add(new PriorityQueue<>(k + 1));
+        try {
+            List<Callable<List<PriorityQueue<Float>>>> tasks = new ArrayList<>(corpus.size());
+            for (VectorSource source : corpus) {
+                tasks.add(() -> {
+                    List<PriorityQueue<Float>> tops = new ArrayList<>(queries.size());
+                    for (int q = 0; q < queries.size(); q++) tops.add(new PriorityQueue<>(k + 1));
+                    long[] count = new long[1];
+                    source.forEach(doc -> {
+                        count[0]++;
+                        for (int q = 0; q < queries.size(); q++) offer(tops.get(q), dotProduct(queries.get(q), doc), k);
+                    });
+                    corpusSize.addAndGet(count[0]);
+                    return tops;
+                });
+            }
+            for (Future<List<PriorityQueue<Float>>> f : executor.invokeAll(tasks)) {
+                try {
+                    List<PriorityQueue<Float>> tops = f.get();
+                    for (int q = 0; q < queries.size(); q++) {
+                        for (float score : tops.get(q)) offer(merged.get(q), score, k);
+                    }
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        float[] kth = new float[queries.size()];
+        for (int q = 0; q < queries.size(); q++) {
+            PriorityQueue<Float> top = merged.get(q);
+            kth[q] = top.isEmpty() ? Float.NEGATIVE_INFINITY : top.peek();
+        }
+        System.out.printf("kNN ground truth: %d queries over %,d vectors, k=%d, %d threads, in %.2f sec%n",
+                queries.size(), corpusSize.get(), k, corpus.size(), (System.nanoTime() - start) / 1_000_000_000.0);
+        return kth;
+    }
+
+    // Keeps the best k scores in a min-heap
+    private static void offer(PriorityQueue<Float> top, float score, int k) {
+        if (top.size() < k) {
+            top.add(score);
+        } else if (score > top.peek()) {
+            top.poll();
+            top.add(score);
+        }
+    }
+
+    static float dotProduct(float[] a, float[] b) {
+        // four accumulators, so the additions don't all depend on each other
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (int bound = a.length & ~3; i < bound; i += 4) {
+            s0 += a[i] * b[i];
+            s1 += a[i + 1] * b[i + 1];
+            s2 += a[i + 2] * b[i + 2];
+            s3 += a[i + 3] * b[i + 3];
+        }
+        for (; i < a.length; i++) s0 += a[i] * b[i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // Starts issuing queries at the configured rate, cycling through the sampled queries
+    void start() {
+        running = true;
+        pacer = new Thread(this::pace, "knn-pacer");
+        pacer.setDaemon(true);
+        pacer.start();
+    }
+
+    // Stops issuing queries, then waits for those in flight, for up to DRAIN_TIMEOUT
+    void stop() throws InterruptedException {
+        running = false;
+        if (pacer != null) pacer.join();
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT.toNanos();
+        synchronized (inFlight) {
+            while (inFlight.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    System.err.printf("kNN: %d queries still in flight after %s, not waiting for them%n",
+                            inFlight.get(), DRAIN_TIMEOUT);
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(inFlight, remaining);
+            }
+        }
+    }
+
+    private void pace() {
+        long intervalNanos = (long) (1_000_000_000.0 / options.qps());
+        long next = System.nanoTime();
+        int q = 0;
+        while (running) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            final long intended = next;
+            final int qi = q;
+            inFlight.incrementAndGet();
+            Thread.startVirtualThread(() -> query(qi, intended));
+            q = (q + 1) % queries.size();
+            next += intervalNanos;
+            // If the pacer itself falls far behind, skip rather than burst
+            if (System.nanoTime() - next > 1_000_000_000L) {
+                long behind = (System.nanoTime() - next) / intervalNanos;
+                dropped.addAndGet(behind);
+                next += behind * intervalNanos;
+            }
+        }
+    }
+
+    private void query(int qi, long intendedStart) {
+        try {
+            double recall = search(qi);
+            recallSum.add(recall);
+            recallCount.incrementAndGet();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+        } finally {
+            latencies.recordNanos(System.nanoTime() - intendedStart);
+            if (inFlight.decrementAndGet() == 0) {
+                synchronized (inFlight) {
+                    inFlight.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Runs the given query, returning its recall against the ground truth
+    private double search(int qi) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(esUrl + "/" + indexName + "/_search"))
+                .timeout(QUERY_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(searchBody(queries.get(qi))))
+                .build();
+        HttpResponse<byte[]> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() >= 300) {
+            throw new IOException("search failed with status " + response.statusCode());
+        }
+        JsonNode hits = JSON_MAPPER.readTree(response.body()).path("hits").path("hits");
+        int relevant = 0;
+        for (JsonNode hit : hits) {
+            // dot_product similarity scores are (1 + dot) / 2
+            float dot = 2 * hit.path("_score").floatValue() - 1;
+            if (dot >= kthScores[qi] - 1e-4f) relevant++;
+        }
+        return Math.min(relevant, options.k()) / (double) options.k();
+    }
+
+    // Once the load has completed: refreshes the index, so that all of the file is
+    // searchable, then runs each query once, RECALL_THREADS at a time
+    void measureRecallAfterLoad() throws IOException, InterruptedException {
+        HttpRequest refresh = HttpRequest.newBuilder()
+                .uri(URI.create(esUrl + "/" + indexName + "/_refresh"))
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<Void> response = CLIENT.send(refresh, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() >= 300) {
+            System.err.println("kNN: refresh failed with status " + response.statusCode() + ", skipping recall check");
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(RECALL_THREADS);
+        try {
+            List<Callable<Double>> tasks = new ArrayList<>(queries.size());
+            for (int q = 0; q < queries.size(); q++) {
+                final int qi = q;
+                tasks.add(() -> search(qi));
+            }
+            double sum = 0;
+            int count = 0;
+            for (Future<Double> f : executor.invokeAll(tasks)) {
+                try {
+                    sum += f.get();
+                    count++;
+                } catch (ExecutionException e) {
+                    failed.incrementAndGet();
+                }
+            }
+            recallAfterLoad = count == 0 ? Double.NaN : sum / count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    String searchBody(float[] vector) {
+        StringBuilder sb = new StringBuilder(vector.length * 12 + 128);
+        sb.append("{\"knn\":{\"field\":\"").append(options.field()).append("\",\"query_vector\":[");
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(vector[i]);
+        }
+        sb.append("],\"k\":").append(options.k())
+          .append(",\"num_candidates\":").append(options.numCandidates())
+          .append("},\"size\":").append(options.k())
+          .append(",\"_source\":false}");
+        return sb.toString();
+    }
+
+    void printSummary() {
+        System.out.println("\n=== kNN Query Summary ===");
+        System.out.printf("Target rate: %.1f queries/sec, k=%d, num_candidates=%d%n",
+                options.qps(), options.k(), options.numCandidates());
+        System.out.printf("Latency (including failed): %s%n", latencies.summary());
+        System.out.printf("Failed queries: %,d%n", failed.get());
+        System.out.printf("Dropped (pacer behind): %,d%n", dropped.get());
+        System.out.printf("Mean recall@%d during load, vs the whole file (tracks load progress): %.4f%n", options.k(),
+                recallCount.get() == 0 ? 0.0 : recallSum.sum() / recallCount.get());
+        System.out.printf("Mean recall@%d after load (graph quality): %.4f%n", options.k(), recallAfterLoad);
+        System.out.println("========================");
+    }
+}
@@ -0,0 +1,89 @@
+package org.chegar;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A small, thread-safe, log-linear latency histogram, in microseconds.
+// Each power of two is split into SUB_BUCKETS linear buckets, so values are
+// recorded to within ~3%. Histograms can be merged, e.g. across threads or processes.
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << (SUB_BITS - 1);    // per power of two
+    private static final int NUM_BUCKETS = (64 - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+    public void recordNanos(long nanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos)));
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(index(micros));
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) counts.addAndGet(i, c);
+        }
+    }
+
+    // The raw bucket counts, e.g. to send elsewhere to be merged with fromCounts
+    public long[] counts() {
+        long[] a = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) a[i] = counts.get(i);
+        return a;
+    }
+
+    public static LatencyHistogram fromCounts(long[] a) {
+        if (a.length != NUM_BUCKETS) {
+            throw new IllegalArgumentException("expected " + NUM_BUCKETS + " buckets, got " + a.length);
+        }
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < NUM_BUCKETS; i++) h.counts.set(i, a[i]);
+        return h;
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    // The value, in microseconds, at the given percentile, e.g. 99.9
+    public long percentile(double percentile) {
+        long[] a = counts();
+        long total = 0;
+        for (long c : a) total += c;
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += a[i];
+            if (seen >= rank) return highestValue(i);
+        }
+        return highestValue(NUM_BUCKETS - 1);
+    }
+
+    public String summary() {
+        return String.format("count=%,d p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+                count(), percentile(50) / 1000.0, percentile(90) / 1000.0,
+                percentile(99) / 1000.0, percentile(99.9) / 1000.0, percentile(100) / 1000.0);
+    }
+
+    // Values below SUB_BUCKETS * 2 have a bucket each, above that the top SUB_BITS bits pick the bucket
+    static int index(long value) {
+        if (value < SUB_BUCKETS * 2L) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        int top = (int) (value >>> shift);                                 // [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        return shift * SUB_BUCKETS + top;
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS * 2) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long top = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
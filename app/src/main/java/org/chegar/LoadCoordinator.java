@@ -0,0 +1,370 @@
+package org.chegar;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Coordinates a bulk load across several LoadWorker processes, on one or more hosts, when
+// a single JVM runs out of NIC or CPU before the cluster does. The input file is split into
+// byte range leases, which are handed out to workers as they ask for them. Leases held by
+// a worker that dies, or stops sending heartbeats, are given to the next worker that asks,
+// so their documents may be indexed more than once. The same goes for a lease that a worker
+// fails, e.g. on an I/O error, which is put back to be leased again, up to MAX_LEASE_FAILURES
+// times. After that it's abandoned, e.g. a corrupt block or a file missing on a host won't
+// go away by retrying, and the load finishes without it. Every worker must see the same file
+// at the same path.
+//
+// The ready/start latch is the same as in BulkJSONLoadGenerator, just across processes:
+// the coordinator waits for numWorkers workers to be ready, then releases them all at once.
+// Workers that join later, e.g. to replace a dead one, start straight away.
+//
+// The protocol is newline delimited text, worker requests and coordinator replies:
+//   HELLO <name> <threads>            -
+//   READY                             START, once all workers are ready
+//   LEASE                             RANGE <id> <startByte> <endByte> | WAIT | FINISHED
+//   DONE <id> <docs>                  -, docs is the number indexed from the lease
+//   FAILED <id>                       -, the lease is put back to be leased again, or abandoned
+//   HEARTBEAT <docsSent>              -
+//   STATS <docs> <failedBulks> <bytes> <elapsedNanos> <latencyCounts,...>   BYE
+public class LoadCoordinator {
+
+    static final String HELLO = "HELLO", READY = "READY", START = "START";
+    static final String LEASE = "LEASE", RANGE = "RANGE", WAIT = "WAIT", FINISHED = "FINISHED";
+    static final String DONE = "DONE", FAILED = "FAILED", HEARTBEAT = "HEARTBEAT", STATS = "STATS", BYE = "BYE";
+
+    static final long HEARTBEAT_INTERVAL_MILLIS = 1_000;
+    static final long HEARTBEAT_TIMEOUT_MILLIS = 10_000;
+    static final int MAX_LEASE_FAILURES = 3;
+
+    // A line based connection, shared by the coordinator and workers
+    static final class Connection implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8));
+        }
+
+        synchronized void send(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        // Reads the next line, throwing EOFException if the other side has gone
+        String receive() throws IOException {
+            String line = in.readLine();
+            if (line == null) throw new EOFException("connection closed by " + socket.getRemoteSocketAddress());
+            return line;
+        }
+
+        synchronized String request(String line) throws IOException {
+            send(line);
+            return receive();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    record Lease(int id, long startByte, long endByte) {}
+
+    // Coordinator side state of a connected worker, guarded by the coordinator's lock
+    static final class Worker {
+        final Connection connection;
+        String name = "?";
+        int threads;
+        volatile long lastHeartbeatMillis = System.currentTimeMillis();
+        long docsSent;
+        final Set<Lease> leases = new HashSet<>();
+        boolean started, finished, dead;
+        long docs, failedBulks, bytes, elapsedNanos;
+
+        Worker(Connection connection) {
+            this.connection = connection;
+        }
+
+        boolean live() {
+            return !finished && !dead;
+        }
+    }
+
+    private final Deque<Lease> pending = new ArrayDeque<>();
+    private final int totalLeases;
+    private final List<Worker> workers = new ArrayList<>();
+    private final LatencyHistogram bulkLatency = new LatencyHistogram();
+    private final CountDownLatch readyLatch;
+    private final CountDownLatch startLatch = new CountDownLatch(1);
+    private int doneLeases;
+    private long doneLeaseDocs;
+    private int reassignedLeases;
+    private final Map<Integer, Integer> leaseFailures = new HashMap<>();
+    private final List<Integer> abandonedLeases = new ArrayList<>();
+    private long doneNanos;
+
+    LoadCoordinator(List<BulkJSONLoadGenerator.ByteRange> ranges, int numWorkers) {
+        for (int i = 0; i < ranges.size(); i++) {
+            pending.add(new Lease(i, ranges.get(i).startByte(), ranges.get(i).endByte()));
+        }
+        this.totalLeases = ranges.size();
+        this.readyLatch = new CountDownLatch(numWorkers);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("Usage: java LoadCoordinator <port> <numWorkers> <numLeases> <filePath>");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        int numWorkers = Integer.parseInt(args[1]);
+        int numLeases = Integer.parseInt(args[2]);
+        Path filePath = Path.of(args[3]);
+
+        List<BulkJSONLoadGenerator.ByteRange> ranges = BulkJSONLoadGenerator.partitionFileByBytes(filePath, numLeases);
+        LoadCoordinator coordinator = new LoadCoordinator(ranges, numWorkers);
+
+        System.out.printf("Coordinating load: fileSize=%,d bytes, workers=%d, leases=%d, port=%d, file=%s%n",
+                Files.size(filePath), numWorkers, numLeases, port, filePath);
+
+        ServerSocket server = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> coordinator.accept(server), "coordinator-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // Wait until all are ready
+        coordinator.readyLatch.await();
+
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+        monitor.scheduleAtFixedRate(coordinator::checkHeartbeats,
+                HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        monitor.scheduleAtFixedRate(coordinator::printProgress, 5, 5, TimeUnit.SECONDS);
+
+        System.out.println("All workers ready — releasing start latch!");
+        long start = System.nanoTime();
+        coordinator.startLatch.countDown();
+
+        // Wait for completion
+        coordinator.awaitCompletion();
+
+        monitor.shutdownNow();
+        server.close();
+
+        double elapsedSec = (coordinator.doneNanos - start) / 1_000_000_000.0;
+        coordinator.printSummary(elapsedSec);
+    }
+
+    private void accept(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                Worker worker = new Worker(new Connection(socket));
+                synchronized (this) {
+                    workers.add(worker);
+                }
+                new Thread(() -> handle(worker), "coordinator-" + socket.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (!server.isClosed()) System.err.println("Accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(Worker worker) {
+        try {
+            while (true) {
+                String[] msg = worker.connection.receive().split(" ");
+                switch (msg[0]) {
+                    case HELLO -> {
+                        synchronized (this) {
+                            worker.name = msg[1];
+                            worker.threads = Integer.parseInt(msg[2]);
+                        }
+                        System.out.printf("Worker %s connected, threads=%d%n", worker.name, worker.threads);
+                    }
+                    case READY -> {
+                        readyLatch.countDown();
+                        startLatch.await();
+                        synchronized (this) {
+                            worker.started = true;
+                            worker.lastHeartbeatMillis = System.currentTimeMillis();
+                        }
+                        worker.connection.send(START);
+                    }
+                    case LEASE -> worker.connection.send(nextLease(worker));
+                    case DONE -> leaseDone(worker, Integer.parseInt(msg[1]), Long.parseLong(msg[2]));
+                    case FAILED -> leaseFailed(worker, Integer.parseInt(msg[1]));
+                    case HEARTBEAT -> {
+                        worker.lastHeartbeatMillis = System.currentTimeMillis();
+                        synchronized (this) {
+                            worker.docsSent = Long.parseLong(msg[1]);
+                        }
+                    }
+                    case STATS -> {
+                        workerFinished(worker, msg);
+                        worker.connection.send(BYE);
+                        return;
+                    }
+                    default -> throw new IOException("unexpected message: " + String.join(" ", msg));
+                }
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            workerDied(worker, e);
+        } finally {
+            try {
+                worker.connection.close();
+            } catch (IOException ignore) { }
+        }
+    }
+
+    private synchronized String nextLease(Worker worker) {
+        Lease lease = pending.pollFirst();
+        if (lease != null) {
+            worker.leases.add(lease);
+            return RANGE + " " + lease.id() + " " + lease.startByte() + " " + lease.endByte();
+        }
+        return doneLeases == totalLeases ? FINISHED : WAIT;
+    }
+
+    private synchronized void leaseDone(Worker worker, int leaseId, long docs) {
+        if (worker.leases.removeIf(l -> l.id() == leaseId)) {
+            doneLeases++;
+            doneLeaseDocs += docs;
+            notifyAll();
+        }
+    }
+
+    private synchronized void leaseFailed(Worker worker, int leaseId) {
+        for (Iterator<Lease> it = worker.leases.iterator(); it.hasNext(); ) {
+            Lease lease = it.next();
+            if (lease.id() == leaseId) {
+                it.remove();
+                int failures = leaseFailures.merge(leaseId, 1, Integer::sum);
+                if (failures >= MAX_LEASE_FAILURES) {
+                    // counts as done, with no docs, so that the load can finish
+                    abandonedLeases.add(leaseId);
+                    doneLeases++;
+                    System.err.printf("Worker %s failed lease %d, %d failures, abandoning it%n",
+                            worker.name, leaseId, failures);
+                    notifyAll();
+                } else {
+                    pending.addFirst(lease);
+                    reassignedLeases++;
+                    System.err.printf("Worker %s failed lease %d, reassigning it%n", worker.name, leaseId);
+                }
+                return;
+            }
+        }
+    }
+
+    private synchronized void workerFinished(Worker worker, String[] msg) {
+        worker.docs = Long.parseLong(msg[1]);
+        worker.failedBulks = Long.parseLong(msg[2]);
+        worker.bytes = Long.parseLong(msg[3]);
+        worker.elapsedNanos = Long.parseLong(msg[4]);
+        long[] counts = Arrays.stream(msg[5].split(",")).mapToLong(Long::parseLong).toArray();
+        bulkLatency.add(LatencyHistogram.fromCounts(counts));
+        worker.finished = true;
+        releaseLeases(worker);
+        System.out.printf("Worker %s finished: %,d docs in %.2f sec%n",
+                worker.name, worker.docs, worker.elapsedNanos / 1_000_000_000.0);
+        notifyAll();
+    }
+
+    private synchronized void workerDied(Worker worker, Exception e) {
+        if (!worker.live()) return;
+        worker.dead = true;
+        System.err.printf("Worker %s lost (%s), reassigning %d lease(s)%n",
+                worker.name, e.getMessage(), worker.leases.size());
+        releaseLeases(worker);
+        notifyAll();
+    }
+
+    // Puts any leases the worker still holds back at the front of the queue
+    private void releaseLeases(Worker worker) {
+        for (Lease lease : worker.leases) {
+            pending.addFirst(lease);
+            reassignedLeases++;
+        }
+        worker.leases.clear();
+    }
+
+    private void checkHeartbeats() {
+        long now = System.currentTimeMillis();
+        List<Worker> stale = new ArrayList<>();
+        synchronized (this) {
+            for (Worker w : workers) {
+                if (w.started && w.live() && now - w.lastHeartbeatMillis > HEARTBEAT_TIMEOUT_MILLIS) stale.add(w);
+            }
+        }
+        for (Worker w : stale) {
+            // Closing the connection wakes its handler, which reassigns the leases
+            System.err.printf("Worker %s missed heartbeats for %,d ms%n", w.name, now - w.lastHeartbeatMillis);
+            try {
+                w.connection.close();
+            } catch (IOException ignore) { }
+        }
+    }
+
+    // Waits until every lease is done, and every live worker has reported its stats
+    private synchronized void awaitCompletion() throws InterruptedException {
+        boolean warned = false;
+        while (doneLeases < totalLeases || workers.stream().anyMatch(Worker::live)) {
+            if (doneNanos == 0 && doneLeases == totalLeases) doneNanos = System.nanoTime();
+            if (!warned && doneLeases < totalLeases && workers.stream().noneMatch(Worker::live)) {
+                System.err.println("No live workers, waiting for one to connect to finish the remaining leases");
+                warned = true;
+            }
+            wait(1_000);
+        }
+        if (doneNanos == 0) doneNanos = System.nanoTime();
+    }
+
+    private synchronized void printProgress() {
+        long docs = 0;
+        for (Worker w : workers) docs += w.finished ? w.docs : w.docsSent;
+        System.out.printf("Progress: %,d docs sent, %d/%d leases done (%,d docs)%n",
+                docs, doneLeases, totalLeases, doneLeaseDocs);
+    }
+
+    synchronized void printSummary(double elapsedSec) {
+        long docs = 0, failed = 0, bytes = 0, dead = 0;
+        for (Worker w : workers) {
+            if (w.dead) dead++;
+            // for lost workers, the docs sent as of their last heartbeat
+            docs += w.finished ? w.docs : w.docsSent;
+            failed += w.failedBulks;
+            bytes += w.bytes;
+        }
+        System.out.println("\n=== Coordinated Bulk Load Summary ===");
+        for (Worker w : workers) {
+            if (w.finished) {
+                System.out.printf("Worker %s: %,d docs, %.2f sec, %.2f docs/sec%n", w.name, w.docs,
+                        w.elapsedNanos / 1_000_000_000.0, w.docs / (w.elapsedNanos / 1_000_000_000.0));
+            } else {
+                System.out.printf("Worker %s: lost, after %,d docs%n", w.name, w.docsSent);
+            }
+        }
+        System.out.printf("Workers: %d (%d lost), leases: %d (%d reassigned)%n",
+                workers.size(), dead, totalLeases, reassignedLeases);
+        System.out.printf("Abandoned leases: %d %s%n", abandonedLeases.size(), abandonedLeases);
+        System.out.printf("Total docs sent: %,d%n", docs);
+        // counts each lease once, so excludes docs resent from reassigned leases
+        System.out.printf("Docs from completed leases: %,d%n", doneLeaseDocs);
+        System.out.printf("Total failed bulks: %,d%n", failed);
+        System.out.printf("Total bytes sent: %,d (%.2f MB)%n", bytes, bytes / (1024.0 * 1024.0));
+        System.out.printf("Elapsed time: %.2f sec%n", elapsedSec);
+        System.out.printf("Bulk latency: %s%n", bulkLatency.summary());
+        System.out.printf("Average throughput: %.2f docs/sec%n", docs / elapsedSec);
+        System.out.println("========================");
+    }
+}
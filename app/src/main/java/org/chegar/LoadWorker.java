@@ -0,0 +1,138 @@
+package org.chegar;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static org.chegar.LoadCoordinator.*;
+
+// A worker process for LoadCoordinator. Once started, each indexing thread repeatedly leases
+// a byte range of the file from the coordinator and loads it, with BulkJSONLoadGenerator for
+// newline delimited JSON or BulkSMILELoadGenerator for a SmileBlockFile, until there are none left.
+public class LoadWorker {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 7) {
+            System.err.println("Usage: java LoadWorker <coordinatorHost:port> <esUrl> <indexName> <bulkSize> " +
+                    "<indexingThreads> <json|smile> <filePath>");
+            System.exit(1);
+        }
+
+        String[] hostPort = args[0].split(":");
+        String esUrl = args[1];
+        String indexName = args[2];
+        int bulkSize = Integer.parseInt(args[3]);
+        int numThreads = Integer.parseInt(args[4]);
+        boolean smile = args[5].toLowerCase(Locale.ROOT).equals("smile");
+        Path filePath = Path.of(args[6]);
+
+        int blockSize = 0;
+        if (smile) {
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                blockSize = SmileBlockFile.blockSize(channel);
+            }
+        }
+        final int fileBlockSize = blockSize;
+        String name = InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid();
+
+        try (Connection coordinator = new Connection(new Socket(hostPort[0], Integer.parseInt(hostPort[1])))) {
+            coordinator.send(HELLO + " " + name + " " + numThreads);
+            System.out.printf("Worker %s connected to %s, threads=%d, bulkSize=%d, file=%s%n",
+                    name, args[0], numThreads, bulkSize, filePath);
+
+            // Wait until all workers are ready
+            String reply = coordinator.request(READY);
+            if (!reply.equals(START)) throw new IOException("expected " + START + ", got " + reply);
+            System.out.println("Start latch released by coordinator!");
+            long start = System.nanoTime();
+
+            ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor();
+            heartbeat.scheduleAtFixedRate(() -> {
+                try {
+                    coordinator.send(HEARTBEAT + " " + docsSent(smile));
+                } catch (IOException e) {
+                    System.err.println("Heartbeat failed: " + e.getMessage());
+                }
+            }, 0, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+            // Leases are already started, so the per-range latches are open
+            CountDownLatch open = new CountDownLatch(0);
+            List<Thread> threads = new ArrayList<>(numThreads);
+            for (int i = 0; i < numThreads; i++) {
+                final int threadId = i;
+                Thread t = new Thread(() -> {
+                    try {
+                        String lease;
+                        while (!(lease = coordinator.request(LEASE)).equals(FINISHED)) {
+                            if (lease.equals(WAIT)) {
+                                // Leases are out with other workers, but may come back if one dies
+                                Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+                                continue;
+                            }
+                            String[] range = lease.split(" ");
+                            long startByte = Long.parseLong(range[2]);
+                            long endByte = Long.parseLong(range[3]);
+                            long docs;
+                            try {
+                                docs = smile
+                                        ? BulkSMILELoadGenerator.processChunk(esUrl, indexName, filePath, fileBlockSize,
+                                                startByte, endByte, bulkSize, open, open)
+                                        : BulkJSONLoadGenerator.processChunk(esUrl, indexName, filePath,
+                                                startByte, endByte, bulkSize, open, open);
+                            } catch (IOException | RuntimeException e) {
+                                // Hand the range back to be leased again, then back off before the next lease
+                                System.err.printf("Thread-%d failed lease %s: %s%n", threadId, range[1], e.getMessage());
+                                e.printStackTrace();
+                                coordinator.send(FAILED + " " + range[1]);
+                                Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+                                continue;
+                            }
+                            coordinator.send(DONE + " " + range[1] + " " + docs);
+                        }
+                    } catch (Exception e) {
+                        System.err.printf("Thread-%d failed: %s%n", threadId, e.getMessage());
+                        e.printStackTrace();
+                    }
+                }, "bulk-thread-" + threadId);
+                threads.add(t);
+            }
+
+            threads.forEach(Thread::start);
+
+            // Wait for completion
+            for (Thread t : threads) t.join();
+
+            heartbeat.shutdownNow();
+            long elapsedNanos = System.nanoTime() - start;
+
+            LatencyHistogram latency = smile ? BulkSMILELoadGenerator.BULK_LATENCY : BulkJSONLoadGenerator.BULK_LATENCY;
+            String counts = Arrays.stream(latency.counts()).mapToObj(Long::toString).collect(Collectors.joining(","));
+            reply = coordinator.request(String.join(" ", STATS,
+                    Long.toString(docsSent(smile)),
+                    Long.toString(smile ? BulkSMILELoadGenerator.TOTAL_FAILED_BULKS.get() : BulkJSONLoadGenerator.TOTAL_FAILED_BULKS.get()),
+                    Long.toString(smile ? BulkSMILELoadGenerator.TOTAL_BYTES_SENT.get() : BulkJSONLoadGenerator.TOTAL_BYTES_SENT.get()),
+                    Long.toString(elapsedNanos),
+                    counts));
+            if (!reply.equals(BYE)) System.err.println("Unexpected reply to stats: " + reply);
+
+            double elapsedSec = elapsedNanos / 1_000_000_000.0;
+            if (smile) {
+                BulkSMILELoadGenerator.printSummary(elapsedSec);
+            } else {
+                BulkJSONLoadGenerator.printSummary(elapsedSec);
+            }
+        }
+    }
+
+    static long docsSent(boolean smile) {
+        return smile ? BulkSMILELoadGenerator.TOTAL_DOCS_SENT.get() : BulkJSONLoadGenerator.TOTAL_DOCS_SENT.get();
+    }
+}
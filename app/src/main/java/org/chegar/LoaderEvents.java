@@ -0,0 +1,123 @@
+package org.chegar;
+
+import jdk.jfr.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+// JFR events for the bulk loaders, so that loader-side time can be broken down in JMC
+// into reading the file, assembling the bulk body, waiting on HTTP, and handling the response.
+// The events are always emitted, but cost next to nothing unless a recording enables them,
+// e.g. with --jfr, or -XX:StartFlightRecording.
+public final class LoaderEvents {
+
+    private LoaderEvents() {}
+
+    static final String JFR_FLAG = "--jfr";
+
+    @Name("org.chegar.ChunkRead")
+    @Label("Chunk Read")
+    @Category({"Format Tools", "Loader"})
+    @Description("Reading the next bulk's worth of documents from the input file")
+    @StackTrace(false)
+    public static class ChunkRead extends Event {
+        @Label("Documents")
+        public int docs;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("org.chegar.BulkAssembly")
+    @Label("Bulk Assembly")
+    @Category({"Format Tools", "Loader"})
+    @Description("Building a bulk request body from documents")
+    @StackTrace(false)
+    public static class BulkAssembly extends Event {
+        @Label("Documents")
+        public int docs;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("org.chegar.BulkSend")
+    @Label("Bulk Send")
+    @Category({"Format Tools", "Loader"})
+    @Description("Sending a bulk request and waiting for its response, the event duration is the latency")
+    @StackTrace(false)
+    public static class BulkSend extends Event {
+        @Label("Endpoint")
+        public String endpoint;
+
+        @Label("Status")
+        public int status;
+
+        @Label("Documents")
+        public int docs;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("org.chegar.BulkResponse")
+    @Label("Bulk Response")
+    @Category({"Format Tools", "Loader"})
+    @Description("Handling a bulk response, checking its status and updating the counters")
+    @StackTrace(false)
+    public static class BulkResponse extends Event {
+        @Label("Status")
+        public int status;
+
+        @Label("Failed")
+        public boolean failed;
+
+        @Label("Response Bytes")
+        @DataAmount
+        public long responseBytes;
+    }
+
+    // Starts a recording with the JDK's profile configuration, tuned for the loaders:
+    // all the loader events without a threshold, and socket I/O down to 1 ms, to line
+    // up with BulkSend. The recording is written to <name>-<timestamp>.jfr on stop.
+    static Recording startRecording(String name) throws IOException, ParseException {
+        Configuration profile = Configuration.getConfiguration("profile");
+        Recording recording = new Recording(profile);
+        recording.setName(name);
+        recording.setSettings(tuned(recording.getSettings()));
+        recording.setToDisk(true);
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        recording.setDestination(Path.of(name + "-" + timestamp + ".jfr"));
+        recording.start();
+        System.out.println("JFR recording started, destination " + recording.getDestination());
+        return recording;
+    }
+
+    static void stopRecording(Recording recording) {
+        if (recording != null) {
+            recording.stop();
+            System.out.println("JFR recording written to " + recording.getDestination());
+            recording.close();
+        }
+    }
+
+    private static Map<String, String> tuned(Map<String, String> settings) {
+        for (Class<?> c : new Class<?>[] {ChunkRead.class, BulkAssembly.class, BulkSend.class, BulkResponse.class}) {
+            String name = c.getAnnotation(Name.class).value();
+            settings.put(name + "#enabled", "true");
+            settings.put(name + "#threshold", "0 ms");
+        }
+        for (String io : new String[] {"jdk.SocketRead", "jdk.SocketWrite", "jdk.FileRead"}) {
+            settings.put(io + "#enabled", "true");
+            settings.put(io + "#threshold", "1 ms");
+        }
+        return settings;
+    }
+}
@@ -16,14 +16,22 @@ import java.nio.file.Paths;
 
 public class NdjsonToSmile {
 
+    static final String BLOCKS_FLAG = "--blocks";
+
     public static void main(String[] args) throws IOException {
-        if (args.length != 2) {
-            System.err.println("Usage: java NdjsonToSmile <input.ndjson> <output.bin>");
+        if (args.length != 2 && !(args.length == 3 && args[2].startsWith(BLOCKS_FLAG))) {
+            System.err.println("Usage: java NdjsonToSmile <input.ndjson> <output.bin> [--blocks[=<blockSize>]]");
             System.exit(1);
         }
 
         String inputPath = args[0];
         String outputPath = args[1];
+        // With --blocks, write a SmileBlockFile, so it can be loaded in parallel by byte range
+        int blockSize = 0;
+        if (args.length == 3) {
+            blockSize = args[2].equals(BLOCKS_FLAG) ? SmileBlockFile.DEFAULT_BLOCK_SIZE
+                    : Integer.parseInt(args[2].substring(BLOCKS_FLAG.length() + 1));
+        }
 
         ObjectMapper jsonMapper = new ObjectMapper();
         ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
@@ -32,7 +40,8 @@ public class NdjsonToSmile {
         try (InputStream fis = Files.newInputStream(Paths.get(inputPath));
              // LZ4FrameInputStream lz4In = new LZ4FrameInputStream(fis);
              BufferedReader reader = new BufferedReader(new InputStreamReader(fis));
-             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputPath)))) {
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputPath)));
+             SmileBlockFile.Writer blockWriter = blockSize > 0 ? new SmileBlockFile.Writer(out, blockSize) : null) {
 
             String line;
             while ((line = reader.readLine()) != null) {
@@ -43,8 +52,12 @@ public class NdjsonToSmile {
                 JsonNode node = jsonMapper.readTree(line);
                 byte[] smileBytes = smileMapper.writeValueAsBytes(node);
 
-                out.writeInt(smileBytes.length);
-                out.write(smileBytes);
+                if (blockWriter != null) {
+                    blockWriter.write(smileBytes);
+                } else {
+                    out.writeInt(smileBytes.length);
+                    out.write(smileBytes);
+                }
                 count++;
 
                 if (count % 100_000 == 0) {
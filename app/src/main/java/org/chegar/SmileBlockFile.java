@@ -0,0 +1,224 @@
+package org.chegar;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+// A container of 4-byte length-prefixed Smile documents, laid out in fixed-size blocks,
+// so that a reader can start from an arbitrary byte offset. Rounding the offset up to a
+// multiple of the block size lands on a block header, which says where the first record
+// starting in that block is. Records are written back to back, and may span blocks.
+//
+// Each block is a header followed by up to blockSize - HEADER_SIZE bytes of payload.
+// Only the last block in the file can be shorter than blockSize. Header, big-endian:
+//   int magic             MAGIC
+//   int blockSize         the same in every block
+//   int docCount          the number of records that start in this block
+//   int firstRecordOffset from the start of the block, or 0 if no record starts here
+//   int payloadLength     the number of payload bytes that follow the header
+//   int checksum          CRC32C of the payload
+public final class SmileBlockFile {
+
+    private SmileBlockFile() {}
+
+    static final int MAGIC = 0x534D424B; // "SMBK"
+    static final int HEADER_SIZE = 24;
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    static final int MIN_BLOCK_SIZE = 4096;
+
+    static long blockStart(long block, int blockSize) {
+        return block * blockSize;
+    }
+
+    // The first block that starts at or after the given byte offset
+    static long blockAtOrAfter(long byteOffset, int blockSize) {
+        return (byteOffset + blockSize - 1) / blockSize;
+    }
+
+    // Reads the block size from the header of the first block
+    static int blockSize(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new EOFException("no block header, not a Smile block file?");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("bad block magic at offset 0, not a Smile block file?");
+        }
+        return header.getInt();
+    }
+
+    public static class Writer implements Closeable {
+        private final OutputStream out;
+        private final int blockSize;
+        private final byte[] block;
+        private final CRC32C crc = new CRC32C();
+        private final byte[] lenBytes = new byte[4];
+        private int pos = HEADER_SIZE;
+        private int docCount;
+        private int firstRecordOffset;
+
+        public Writer(OutputStream out, int blockSize) {
+            if (blockSize < MIN_BLOCK_SIZE) {
+                throw new IllegalArgumentException("block size must be at least " + MIN_BLOCK_SIZE + ", got " + blockSize);
+            }
+            this.out = out;
+            this.blockSize = blockSize;
+            this.block = new byte[blockSize];
+        }
+
+        public void write(byte[] doc) throws IOException {
+            if (pos == blockSize) flushBlock();
+            if (firstRecordOffset == 0) firstRecordOffset = pos;
+            docCount++;
+            ByteBuffer.wrap(lenBytes).putInt(doc.length);
+            put(lenBytes, 0, lenBytes.length);
+            put(doc, 0, doc.length);
+        }
+
+        private void put(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (pos == blockSize) flushBlock();
+                int n = Math.min(len, blockSize - pos);
+                System.arraycopy(b, off, block, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            int payloadLength = pos - HEADER_SIZE;
+            crc.reset();
+            crc.update(block, HEADER_SIZE, payloadLength);
+            ByteBuffer.wrap(block, 0, HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .putInt(blockSize)
+                    .putInt(docCount)
+                    .putInt(firstRecordOffset)
+                    .putInt(payloadLength)
+                    .putInt((int) crc.getValue());
+            out.write(block, 0, pos);
+            pos = HEADER_SIZE;
+            docCount = 0;
+            firstRecordOffset = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (pos > HEADER_SIZE) flushBlock();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // Reads the records that start in blocks [firstBlock, endBlock). The last record
+    // may continue into later blocks, which are read as needed.
+    public static class Reader {
+        private final FileChannel channel;
+        private final int blockSize;
+        private final long endBlock;
+        private final ByteBuffer buf;
+        private final CRC32C crc = new CRC32C();
+        private long block = -1;
+        private int pos;
+        private int payloadEnd;
+        private int firstRecordOffset;
+        private boolean done;
+
+        public Reader(FileChannel channel, int blockSize, long firstBlock, long endBlock) throws IOException {
+            this.channel = channel;
+            this.blockSize = blockSize;
+            this.endBlock = endBlock;
+            this.buf = ByteBuffer.allocate(blockSize);
+
+            // Resync: skip any leading blocks that only hold the tail of an earlier record
+            done = true;
+            for (long b = firstBlock; b < endBlock && loadBlock(b); b++) {
+                if (firstRecordOffset != 0) {
+                    pos = firstRecordOffset;
+                    done = false;
+                    break;
+                }
+            }
+        }
+
+        // Returns the next Smile document, or null at the end of the range
+        public byte[] next() throws IOException {
+            if (done) return null;
+            if (pos == payloadEnd) {
+                // the previous record ended on a block boundary
+                if (payloadEnd < blockSize || block + 1 >= endBlock || !loadBlock(block + 1)) {
+                    done = true;
+                    return null;
+                }
+                if (firstRecordOffset != HEADER_SIZE) {
+                    throw new IOException("expected a record at the start of block " + block);
+                }
+            }
+            if (block >= endBlock) {
+                // the previous record spanned into the next range
+                done = true;
+                return null;
+            }
+            byte[] len = new byte[4];
+            readFully(len);
+            byte[] doc = new byte[ByteBuffer.wrap(len).getInt()];
+            readFully(doc);
+            return doc;
+        }
+
+        private void readFully(byte[] b) throws IOException {
+            int off = 0;
+            while (off < b.length) {
+                if (pos == payloadEnd && !loadBlock(block + 1)) {
+                    throw new EOFException("truncated record in block " + block);
+                }
+                int n = Math.min(b.length - off, payloadEnd - pos);
+                buf.get(pos, b, off, n);
+                pos += n;
+                off += n;
+            }
+        }
+
+        // Loads the given block, returning false if it's past the end of the file
+        private boolean loadBlock(long b) throws IOException {
+            long offset = blockStart(b, blockSize);
+            buf.clear();
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, offset + buf.position());
+                if (n < 0) break;
+            }
+            if (buf.position() == 0) return false;
+            if (buf.position() < HEADER_SIZE) {
+                throw new EOFException("truncated header in block " + b);
+            }
+
+            int magic = buf.getInt(0);
+            int size = buf.getInt(4);
+            int payloadLength = buf.getInt(16);
+            if (magic != MAGIC || size != blockSize) {
+                throw new IOException("bad header in block " + b + ", at offset " + offset);
+            }
+            if (HEADER_SIZE + payloadLength > buf.position()) {
+                throw new EOFException("truncated payload in block " + b);
+            }
+            crc.reset();
+            crc.update(buf.array(), HEADER_SIZE, payloadLength);
+            if ((int) crc.getValue() != buf.getInt(20)) {
+                throw new IOException("checksum mismatch in block " + b + ", at offset " + offset);
+            }
+
+            block = b;
+            firstRecordOffset = buf.getInt(12);
+            payloadEnd = HEADER_SIZE + payloadLength;
+            pos = HEADER_SIZE;
+            return true;
+        }
+    }
+}
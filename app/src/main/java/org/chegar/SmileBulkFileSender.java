@@ -1,5 +1,7 @@
 package org.chegar;
 
+import jdk.jfr.Recording;
+
 import java.io.*;
 import java.net.URI;
 import java.net.http.HttpClient;
@@ -7,15 +9,19 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.SplittableRandom;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class SmileBulkFileSender {
 
     // Precomputed length-prefixed Smile index action line, {"index":{}}
-    private static final byte[] INDEX_ACTION_LINE = new byte[]{
+    static final byte[] INDEX_ACTION_LINE = new byte[]{
             (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x0E, // 14 bytes
             (byte) 0x3A,(byte)  0x29, (byte) 0x0A, (byte) 0x01, // smile header
             (byte) 0xFA, // START_OBJECT (root)
@@ -41,8 +47,13 @@ public class SmileBulkFileSender {
     public record BulkRange(long startOffset, int docCount) {}
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 4) {
-            System.err.println("Usage: java SmileBulkFileSender <esUrl> <indexName> <bulkSize> <filePath> <ds>");
+        List<String> argList = new ArrayList<>(List.of(args));
+        boolean jfr = argList.remove(LoaderEvents.JFR_FLAG);
+        KnnQueryWorkload.Options knnOptions = KnnQueryWorkload.Options.parse(argList);
+        args = argList.toArray(String[]::new);
+        if (args.length != 5) {
+            System.err.println("Usage: java SmileBulkFileSender [--jfr] " + KnnQueryWorkload.Options.USAGE +
+                    " <esUrl> <indexName> <bulkSize> <filePath> <ds>");
             System.exit(1);
         }
 
@@ -54,12 +65,23 @@ public class SmileBulkFileSender {
 
         // Generate all bulk ranges in main thread
         List<BulkRange> bulkRanges = new ArrayList<>();
+        // Reservoir sample of record offsets, for the kNN query vectors
+        long[] queryOffsets = new long[knnOptions == null ? 0 : knnOptions.numQueries()];
+        SplittableRandom random = new SplittableRandom(new File(filePath).length());
+        long numRecords = 0;
         try (RandomAccessFile raf = new RandomAccessFile(filePath, "r")) {
             long pos = 0;
             while (pos < raf.length()) {
                 long bulkStart = pos;
                 int count = 0;
                 while (pos < raf.length() && count < bulkSize) {
+                    if (numRecords < queryOffsets.length) {
+                        queryOffsets[(int) numRecords] = pos;
+                    } else if (queryOffsets.length > 0) {
+                        long j = random.nextLong(numRecords + 1);
+                        if (j < queryOffsets.length) queryOffsets[(int) j] = pos;
+                    }
+                    numRecords++;
                     raf.seek(pos);
                     int len = raf.readInt();
                     pos += 4L + len;
@@ -94,6 +116,13 @@ public class SmileBulkFileSender {
             System.out.printf("Documents sent: %d%n", SENT_DOCS.get());
         }, 5, 5, TimeUnit.SECONDS);
 
+        KnnQueryWorkload knn = knnOptions == null ? null
+                : KnnQueryWorkload.forSmileFile(esUrl, indexName, knnOptions, Path.of(filePath),
+                                                Arrays.copyOf(queryOffsets, (int) Math.min(numRecords, queryOffsets.length)),
+                                                bulkRanges);
+
+        Recording recording = jfr ? LoaderEvents.startRecording("smile-bulk") : null;
+
         // Start threads
         long startNanos = System.nanoTime();
         List<Thread> threads = new ArrayList<>();
@@ -113,19 +142,29 @@ public class SmileBulkFileSender {
             thread.start();
             threads.add(thread);
         }
+        if (knn != null) knn.start();
 
         // Wait for threads to finish
         for (Thread t : threads) t.join();
         long elapsed = (System.nanoTime() - startNanos) / 1_000_000_000;
         reporter.shutdownNow();
+        if (knn != null) knn.stop();
+        LoaderEvents.stopRecording(recording);
 
         System.out.println("All documents sent. " + elapsed + "secs");
+        if (knn != null) {
+            knn.measureRecallAfterLoad();
+            knn.printSummary();
+        }
     }
 
     private static void sendBulk(FileChannel channel, BulkRange range,
                                  String esUrl, String indexName, byte[] action)
             throws IOException, InterruptedException
     {
+        // Reading the documents is interleaved with writing them, so is part of the assembly
+        LoaderEvents.BulkAssembly assembly = new LoaderEvents.BulkAssembly();
+        assembly.begin();
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream out = new DataOutputStream(baos);
 
@@ -151,19 +190,48 @@ public class SmileBulkFileSender {
 
             pos += 4L + docLen;
         }
+        byte[] body = baos.toByteArray();
+        assembly.end();
+        if (assembly.shouldCommit()) {
+            assembly.docs = range.docCount();
+            assembly.bytes = body.length;
+            assembly.commit();
+        }
 
         // Send bulk request
+        String endpoint = esUrl + "/" + indexName + "/_bulk";
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(esUrl + "/" + indexName + "/_bulk"))
+                .uri(URI.create(endpoint))
                 .header("Content-Type", "application/smile")
                 .header("Bulk-Format", "prefix-length")
-                .POST(HttpRequest.BodyPublishers.ofByteArray(baos.toByteArray()))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
                 .build();
 
-        HttpResponse<String> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() >= 300) {
+        LoaderEvents.BulkSend send = new LoaderEvents.BulkSend();
+        send.begin();
+        HttpResponse<byte[]> response = CLIENT.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        send.end();
+        if (send.shouldCommit()) {
+            send.endpoint = endpoint;
+            send.status = response.statusCode();
+            send.docs = range.docCount();
+            send.bytes = body.length;
+            send.commit();
+        }
+
+        LoaderEvents.BulkResponse handling = new LoaderEvents.BulkResponse();
+        handling.begin();
+        boolean failed = response.statusCode() >= 300;
+        if (failed) {
             System.err.println("Bulk request failed: " + response.statusCode());
-            System.err.println(response.body());
+            System.err.println(new String(response.body(), StandardCharsets.UTF_8));
+        }
+        handling.end();
+        if (handling.shouldCommit()) {
+            handling.status = response.statusCode();
+            handling.failed = failed;
+            handling.responseBytes = response.body().length;
+            handling.commit();
         }
     }
 }
@@ -0,0 +1,208 @@
+package org.chegar;
+
+import jdk.jfr.Recording;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bulk loads synthetic vectors, generated on the fly, rather than reading them from a file.
+// For testing with more vectors, or other dims, than the OpenAI dataset has.
+// Use an esUrl of "none" to generate the bulk bodies without sending them, which measures
+// the generator's own docs/sec ceiling.
+public class SyntheticBulkLoadGenerator {
+
+    static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    static final AtomicLong TOTAL_DOCS_SENT = new AtomicLong(0);
+    private static final AtomicLong TOTAL_FAILED_BULKS = new AtomicLong(0);
+    private static final AtomicLong TOTAL_BYTES_SENT = new AtomicLong(0);
+    static final LatencyHistogram BULK_LATENCY = new LatencyHistogram();
+
+    public static void main(String[] args) throws Exception {
+        List<String> argList = new ArrayList<>(List.of(args));
+        boolean jfr = argList.remove(LoaderEvents.JFR_FLAG);
+        args = argList.toArray(String[]::new);
+        if (args.length != 8 && args.length != 9) {
+            System.err.println("Usage: java SyntheticBulkLoadGenerator [--jfr] <esUrl|none> <indexName> <bulkSize> <indexingThreads> " +
+                    "<numDocs> <dims> <json|smile> <seed> [numClusters]");
+            System.exit(1);
+        }
+
+        String esUrl = args[0];
+        String indexName = args[1];
+        int bulkSize = Integer.parseInt(args[2]);
+        int numThreads = Integer.parseInt(args[3]);
+        long numDocs = Long.parseLong(args[4]);
+        int dims = Integer.parseInt(args[5]);
+        SyntheticVectors.Format format = SyntheticVectors.Format.valueOf(args[6].toUpperCase(Locale.ROOT));
+        long seed = Long.parseLong(args[7]);
+        int numClusters = args.length == 9 ? Integer.parseInt(args[8]) : 0;
+        boolean dryRun = esUrl.equals("none");
+
+        System.out.printf(
+                "Starting load: docs=%,d, dims=%d, format=%s, seed=%d, clusters=%d, threads=%d, bulkSize=%d, dryRun=%b%n",
+                numDocs, dims, format, seed, numClusters, numThreads, bulkSize, dryRun
+        );
+
+        // Centroids and per-thread generators all derive from the one seed, so that
+        // a run is reproducible for a given seed and thread count.
+        SplittableRandom root = new SplittableRandom(seed);
+        float[][] centroids = SyntheticVectors.centroids(root, numClusters, dims);
+
+        Recording recording = jfr ? LoaderEvents.startRecording("synthetic-bulk") : null;
+
+        CountDownLatch readyLatch = new CountDownLatch(numThreads);
+        CountDownLatch startLatch = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>(numThreads);
+
+        for (int i = 0; i < numThreads; i++) {
+            final int threadId = i;
+            long docsForThread = numDocs / numThreads + (i < numDocs % numThreads ? 1 : 0);
+            SyntheticVectors vectors = new SyntheticVectors(root.split(), dims, centroids);
+
+            Thread t = new Thread(() -> {
+                try {
+                    generate(esUrl, indexName, vectors, format, docsForThread, bulkSize,
+                            dryRun, readyLatch, startLatch);
+                } catch (Exception e) {
+                    System.err.printf("Thread-%d failed: %s%n", threadId, e.getMessage());
+                    e.printStackTrace();
+                }
+            }, "bulk-thread-" + threadId);
+            threads.add(t);
+        }
+
+        // Start threads
+        threads.forEach(Thread::start);
+
+        // Wait until all are ready
+        readyLatch.await();
+
+        // start the progress reporter
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() ->
+                        System.out.printf("Progress: %,d docs sent%n", TOTAL_DOCS_SENT.get()),
+                5, 5, TimeUnit.SECONDS);
+
+        System.out.println("All threads ready — releasing start latch!");
+        long start = System.nanoTime();
+        startLatch.countDown();
+
+        // Wait for completion
+        for (Thread t : threads) t.join();
+
+        reporter.shutdownNow();
+
+        double elapsedSec = (System.nanoTime() - start) / 1_000_000_000.0;
+        LoaderEvents.stopRecording(recording);
+        printSummary(elapsedSec);
+    }
+
+    static void generate(String esUrl, String indexName, SyntheticVectors vectors,
+                         SyntheticVectors.Format format, long numDocs, int bulkSize, boolean dryRun,
+                         CountDownLatch readyLatch, CountDownLatch startLatch)
+            throws IOException, InterruptedException {
+
+        readyLatch.countDown();
+        startLatch.await();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(16384);
+        long remaining = numDocs;
+        while (remaining > 0) {
+            int count = (int) Math.min(bulkSize, remaining);
+            // Generating the vectors stands in for both reading and assembling the bulk
+            LoaderEvents.BulkAssembly assembly = new LoaderEvents.BulkAssembly();
+            assembly.begin();
+            vectors.writeBulk(format, count, baos);
+            assembly.end();
+            if (assembly.shouldCommit()) {
+                assembly.docs = count;
+                assembly.bytes = baos.size();
+                assembly.commit();
+            }
+
+            if (dryRun) {
+                TOTAL_BYTES_SENT.addAndGet(baos.size());
+                TOTAL_DOCS_SENT.addAndGet(count);
+            } else {
+                sendBulk(esUrl, indexName, baos.toByteArray(), count, format);
+            }
+            baos.reset();
+            remaining -= count;
+        }
+    }
+
+    static void sendBulk(String esUrl, String indexName, byte[] body, int docCount,
+                         SyntheticVectors.Format format)
+            throws IOException, InterruptedException {
+
+        String endpoint = esUrl + "/" + indexName + "/_bulk";
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(endpoint))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        if (format == SyntheticVectors.Format.SMILE) {
+            builder.header("Content-Type", "application/smile")
+                   .header("Bulk-Format", "prefix-length");
+        } else {
+            builder.header("Content-Type", "application/x-ndjson");
+        }
+
+        LoaderEvents.BulkSend send = new LoaderEvents.BulkSend();
+        send.begin();
+        long sendStart = System.nanoTime();
+        HttpResponse<byte[]> response = CLIENT.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+        BULK_LATENCY.recordNanos(System.nanoTime() - sendStart);
+        send.end();
+        if (send.shouldCommit()) {
+            send.endpoint = endpoint;
+            send.status = response.statusCode();
+            send.docs = docCount;
+            send.bytes = body.length;
+            send.commit();
+        }
+
+        LoaderEvents.BulkResponse handling = new LoaderEvents.BulkResponse();
+        handling.begin();
+        TOTAL_BYTES_SENT.addAndGet(body.length);
+
+        boolean failed = response.statusCode() >= 300;
+        if (failed) {
+            TOTAL_FAILED_BULKS.incrementAndGet();
+            System.err.printf("[%s] Bulk failed: %d%n", Thread.currentThread().getName(), response.statusCode());
+        } else {
+            TOTAL_DOCS_SENT.addAndGet(docCount);
+        }
+        handling.end();
+        if (handling.shouldCommit()) {
+            handling.status = response.statusCode();
+            handling.failed = failed;
+            handling.responseBytes = response.body().length;
+            handling.commit();
+        }
+    }
+
+    static void printSummary(double elapsedSec) {
+        System.out.println("\n=== Bulk Load Summary ===");
+        System.out.printf("Total docs sent: %,d%n", TOTAL_DOCS_SENT.get());
+        System.out.printf("Total failed bulks: %,d%n", TOTAL_FAILED_BULKS.get());
+        System.out.printf("Total bytes sent: %,d (%.2f MB)%n",
+                TOTAL_BYTES_SENT.get(), TOTAL_BYTES_SENT.get() / (1024.0 * 1024.0));
+        System.out.printf("Elapsed time: %.2f sec%n", elapsedSec);
+        System.out.printf("Bulk latency: %s%n", BULK_LATENCY.summary());
+        System.out.printf("Average throughput: %.2f docs/sec%n",
+                TOTAL_DOCS_SENT.get() / elapsedSec);
+        System.out.println("========================");
+    }
+}
@@ -0,0 +1,150 @@
+package org.chegar;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+// Seeded source of synthetic float vectors, serialized straight into bulk bodies.
+// Vectors are unit length, so they can be indexed with dot_product similarity.
+// Each worker thread gets its own instance, with a random split from a common root.
+public class SyntheticVectors {
+
+    public enum Format { JSON, SMILE }
+
+    // Spread of the clustered vectors around their centroid, before normalization. The
+    // per component noise is CLUSTER_SIGMA / sqrt(dims), the same scale as a unit centroid's
+    // components, so that how tight the clusters are doesn't depend on the dimension.
+    static final double CLUSTER_SIGMA = 0.1;
+
+    // Fraction digits written per JSON vector component
+    static final int JSON_DECIMALS = 7;
+    private static final long JSON_SCALE = 10_000_000L;
+
+    private static final SmileFactory SMILE_FACTORY = new SmileFactory();
+    private static final byte[] EMB_PREFIX = "{\"emb\":[".getBytes(US_ASCII);
+    private static final byte[] EMB_SUFFIX = "]}\n".getBytes(US_ASCII);
+
+    private final SplittableRandom random;
+    private final float[][] centroids; // null, or empty, for uniform random vectors
+    private final float[] vector;
+    private final double componentSigma;
+    private final ByteArrayOutputStream docBuf = new ByteArrayOutputStream(16384);
+    private final byte[] jsonBuf;
+
+    public SyntheticVectors(SplittableRandom random, int dims, float[][] centroids) {
+        this.random = random;
+        this.centroids = centroids;
+        this.vector = new float[dims];
+        this.componentSigma = CLUSTER_SIGMA / Math.sqrt(dims);
+        // sign, digit, point, fraction digits and comma per component
+        this.jsonBuf = new byte[EMB_PREFIX.length + dims * (JSON_DECIMALS + 4) + EMB_SUFFIX.length];
+    }
+
+    // Generates numClusters unit length centroids. Call from one thread, before splitting.
+    public static float[][] centroids(SplittableRandom random, int numClusters, int dims) {
+        float[][] centroids = new float[numClusters][dims];
+        for (float[] c : centroids) {
+            for (int i = 0; i < dims; i++) {
+                c[i] = (float) random.nextGaussian();
+            }
+            normalize(c);
+        }
+        return centroids;
+    }
+
+    // Returns the next vector. The returned array is reused by subsequent calls.
+    public float[] next() {
+        if (centroids == null || centroids.length == 0) {
+            // Gaussian components, once normalized, are uniform on the unit sphere
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = (float) random.nextGaussian();
+            }
+        } else {
+            float[] c = centroids[random.nextInt(centroids.length)];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = c[i] + (float) (random.nextGaussian() * componentSigma);
+            }
+        }
+        normalize(vector);
+        return vector;
+    }
+
+    // Appends docCount action and document pairs to the given bulk body.
+    public void writeBulk(Format format, int docCount, ByteArrayOutputStream body) throws IOException {
+        switch (format) {
+            case JSON -> {
+                for (int i = 0; i < docCount; i++) {
+                    body.write(BulkJSONLoadGenerator.INDEX_LINE);
+                    writeJson(next(), body);
+                }
+            }
+            case SMILE -> {
+                DataOutputStream out = new DataOutputStream(body);
+                for (int i = 0; i < docCount; i++) {
+                    out.write(SmileBulkFileSender.INDEX_ACTION_LINE);
+                    docBuf.reset();
+                    writeSmile(next(), docBuf);
+                    out.writeInt(docBuf.size());
+                    docBuf.writeTo(out);
+                }
+            }
+        }
+    }
+
+    // {"emb":[...]}\n, written as ASCII without going through a JSON generator.
+    // Components of a unit vector are in [-1, 1], so rather than the (slow) shortest
+    // round-trip Float.toString, they're written with a fixed JSON_DECIMALS fraction digits.
+    // The document is formatted into jsonBuf, then copied to out in one go.
+    void writeJson(float[] v, ByteArrayOutputStream out) {
+        byte[] buf = jsonBuf;
+        int pos = 0;
+        System.arraycopy(EMB_PREFIX, 0, buf, pos, EMB_PREFIX.length);
+        pos += EMB_PREFIX.length;
+        for (int i = 0; i < v.length; i++) {
+            if (i > 0) buf[pos++] = ',';
+            long scaled = Math.round((double) v[i] * JSON_SCALE);
+            if (scaled < 0) {
+                buf[pos++] = '-';
+                scaled = -scaled;
+            }
+            buf[pos++] = (byte) ('0' + (scaled / JSON_SCALE));
+            buf[pos++] = '.';
+            long frac = scaled % JSON_SCALE;
+            for (int j = pos + JSON_DECIMALS - 1; j >= pos; j--) {
+                buf[j] = (byte) ('0' + (frac % 10));
+                frac /= 10;
+            }
+            pos += JSON_DECIMALS;
+        }
+        System.arraycopy(EMB_SUFFIX, 0, buf, pos, EMB_SUFFIX.length);
+        pos += EMB_SUFFIX.length;
+        out.write(buf, 0, pos);
+    }
+
+    // {"emb":[...]} as a standalone Smile document, floats as 32-bit values
+    static void writeSmile(float[] v, ByteArrayOutputStream out) throws IOException {
+        try (JsonGenerator gen = SMILE_FACTORY.createGenerator(out)) {
+            gen.writeStartObject();
+            gen.writeFieldName("emb");
+            gen.writeStartArray();
+            for (float f : v) {
+                gen.writeNumber(f);
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+    }
+
+    static void normalize(float[] v) {
+        double sum = 0;
+        for (float f : v) sum += (double) f * f;
+        float scale = (float) (1.0 / Math.sqrt(sum));
+        for (int i = 0; i < v.length; i++) v[i] *= scale;
+    }
+}